@@ -15,6 +15,7 @@ import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
@@ -219,6 +220,20 @@ public class NetworkDiffController {
         return ResponseEntity.ok().contentType(MediaType.valueOf("image/svg+xml")).body(svg);
     }
 
+    @GetMapping(value = "/networks/{network1Uuid}/svgdiff/{network2Uuid}/zone/{epsilon}/{voltageEpsilon}")
+    @ApiOperation(value = "get substations svg diff diagrams for a zone, with current and voltage thresholds. Style rules common to all the diagrams are returned once", produces = "application/json")
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "network diff zone")})
+    public ResponseEntity<ZoneSvgDiff> getZoneSvg(
+            @ApiParam(value = "Network1 UUID") @PathVariable("network1Uuid") UUID network1Uuid,
+            @ApiParam(value = "Network2 UUID") @PathVariable("network2Uuid") UUID network2Uuid,
+            @ApiParam(value = "Substations IDs") @RequestParam("ids") List<String> subIds,
+            @ApiParam(value = "Epsilon") @PathVariable("epsilon") Optional<Double> epsilon,
+            @ApiParam(value = "Voltage Epsilon") @PathVariable("voltageEpsilon") Optional<Double> voltageEpsilon,
+            @ApiParam(value = "Levels", hidden = true) @RequestParam("levels") Optional<String> levels) {
+        ZoneSvgDiff zoneSvgDiff = networkDiffService.getZoneSvgDiff(network1Uuid, network2Uuid, subIds, epsilon.orElse(DEFAULTVAL), voltageEpsilon.orElse(DEFAULTVAL), levels.orElse(DEFAULTLEVELSDATA));
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(zoneSvgDiff);
+    }
+
     @GetMapping(value = "/networks/{network1Uuid}/diff/{network2Uuid}/sub/{subId}")
     @ApiOperation(value = "compare two networks substations", produces = "application/json")
     @ApiResponses(value = {@ApiResponse(code = 200, message = "network diff")})
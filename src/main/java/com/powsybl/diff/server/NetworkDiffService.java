@@ -6,25 +6,33 @@
  */
 package com.powsybl.diff.server;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.powsybl.commons.PowsyblException;
 import com.powsybl.diff.LevelsData;
 import com.powsybl.diff.NetworkDiffUtil;
 import com.powsybl.iidm.diff.DiffConfig;
-import com.powsybl.iidm.network.Network;
-import com.powsybl.iidm.network.Substation;
-import com.powsybl.iidm.network.VoltageLevel;
+import com.powsybl.iidm.network.*;
 import com.powsybl.network.store.client.NetworkStoreService;
+import com.powsybl.network.store.client.PreloadingStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
 
-import java.util.Map;
-import java.util.Objects;
-import java.util.UUID;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * @author Christian Biasuzzi <christian.biasuzzi@techrain.eu>
@@ -37,9 +45,51 @@ class NetworkDiffService {
 
     public static final String DEFAULTLEVELSDATA = "{ \"levels\": [{\"id\": 1, \"i\": 0.1, \"v\": 0.1, \"c\": \"red\" }]}";
 
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final Pattern SVG_STYLE_PATTERN = Pattern.compile("<style[^>]*>(.*?)</style>", Pattern.DOTALL);
+
     @Autowired
     private NetworkStoreService networkStoreService;
 
+    @Value("${network-diff.zone-threads:0}")
+    private int zoneThreads;
+
+    @Value("${network-diff.zone-queue-size:1000}")
+    private int zoneQueueSize;
+
+    @Value("${network-diff.zone-max-substations:100}")
+    private int zoneMaxSubstations;
+
+    @Value("${network-diff.zone-timeout-seconds:60}")
+    private long zoneTimeoutSeconds;
+
+    private double payloadLogSamplingRate;
+
+    private ExecutorService zoneExecutor;
+
+    /**
+     * Fraction of the diff requests whose whole json payload is logged at INFO level, payloads are always logged at DEBUG level.
+     */
+    @Value("${network-diff.payload-log-sampling-rate:0}")
+    void setPayloadLogSamplingRate(double payloadLogSamplingRate) {
+        this.payloadLogSamplingRate = payloadLogSamplingRate;
+    }
+
+    @PostConstruct
+    void init() {
+        int threads = zoneThreads > 0 ? zoneThreads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        // bounded queue: the tasks submitted when it is full are rejected instead of piling up
+        zoneExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(zoneQueueSize),
+            runnable -> new Thread(runnable, "zone-svg-diff-" + threadCount.incrementAndGet()));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        zoneExecutor.shutdownNow();
+    }
+
     private Network getNetwork(UUID networkUuid) {
         try {
             return networkStoreService.getNetwork(networkUuid);
@@ -49,6 +99,15 @@ class NetworkDiffService {
         }
     }
 
+    private Network getNetwork(UUID networkUuid, PreloadingStrategy preloadingStrategy) {
+        try {
+            return networkStoreService.getNetwork(networkUuid, preloadingStrategy);
+        } catch (PowsyblException e) {
+            LOGGER.error(e.getMessage());
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Network '" + networkUuid + "' not found");
+        }
+    }
+
     Map<UUID, String> getNetworkIds() {
         return networkStoreService.getNetworkIds();
     }
@@ -66,8 +125,10 @@ class NetworkDiffService {
         Objects.requireNonNull(network1Uuid);
         Objects.requireNonNull(network2Uuid);
         Objects.requireNonNull(vlId);
+        long start = System.nanoTime();
         Network network1 = getNetwork(network1Uuid);
         Network network2 = getNetwork(network2Uuid);
+        long loaded = System.nanoTime();
         VoltageLevel vl1 = network1.getVoltageLevel(vlId);
         if (vl1 == null) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Voltage level " + vlId + " not found in network " + network1Uuid);
@@ -77,10 +138,54 @@ class NetworkDiffService {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Voltage level " + vlId + " not found in network " + network2Uuid);
         }
         String jsonDiff = new NetworkDiffUtil().diffVoltageLevel(network1, network2, vlId, epsilon, voltageEpsilon);
-        LOGGER.info("network1 uuid: {}, network2 uuid: {}, vl: {}, threshold: {}, voltageThreshold: {}, diff: {}", network1Uuid, network2Uuid, vlId, epsilon, voltageEpsilon, jsonDiff);
+        logDiff(network1Uuid, network2Uuid, "vl", vlId, epsilon, voltageEpsilon, jsonDiff, loaded - start, System.nanoTime() - loaded);
         return jsonDiff;
     }
 
+    private void logDiff(UUID network1Uuid, UUID network2Uuid, String type, String id, double epsilon, double voltageEpsilon, String jsonDiff,
+                         long loadNanos, long diffNanos) {
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("network1 uuid: {}, network2 uuid: {}, {}: {}, threshold: {}, voltageThreshold: {}, differences: {}, load time: {} ms, diff time: {} ms",
+                    network1Uuid, network2Uuid, type, id, epsilon, voltageEpsilon, countDifferences(jsonDiff),
+                    TimeUnit.NANOSECONDS.toMillis(loadNanos), TimeUnit.NANOSECONDS.toMillis(diffNanos));
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("network1 uuid: {}, network2 uuid: {}, {}: {}, diff: {}", network1Uuid, network2Uuid, type, id, jsonDiff);
+        } else if (payloadLogSamplingRate > 0 && ThreadLocalRandom.current().nextDouble() < payloadLogSamplingRate) {
+            LOGGER.info("network1 uuid: {}, network2 uuid: {}, {}: {}, sampled diff: {}", network1Uuid, network2Uuid, type, id, jsonDiff);
+        }
+    }
+
+    /**
+     * Counts the differing elements of a json diff, i.e. the ids listed in its top level arrays, or -1 if it cannot be parsed.
+     * The diff details, given as objects in separate arrays, are skipped without being parsed into a tree.
+     */
+    static int countDifferences(String jsonDiff) {
+        try (JsonParser parser = JSON_FACTORY.createParser(jsonDiff)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return -1;
+            }
+            int count = 0;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                if (parser.nextToken() == JsonToken.START_ARRAY) {
+                    JsonToken token;
+                    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                        if (token == JsonToken.VALUE_STRING) {
+                            count++;
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return count;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
     public String getVoltageLevelSvgDiff(UUID network1Uuid, UUID network2Uuid, String vlId) {
         return getVoltageLevelSvgDiff(network1Uuid, network2Uuid, vlId, DiffConfig.EPSILON_DEFAULT, DiffConfig.EPSILON_DEFAULT, DEFAULTLEVELSDATA);
     }
@@ -138,8 +243,10 @@ class NetworkDiffService {
         Objects.requireNonNull(network1Uuid);
         Objects.requireNonNull(network2Uuid);
         Objects.requireNonNull(substationId);
+        long start = System.nanoTime();
         Network network1 = getNetwork(network1Uuid);
         Network network2 = getNetwork(network2Uuid);
+        long loaded = System.nanoTime();
         Substation substation1 = network1.getSubstation(substationId);
         if (substation1 == null) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Substation " + substationId + " not found in network1 " + network1Uuid);
@@ -149,7 +256,7 @@ class NetworkDiffService {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Substation " + substationId + " not found in network2 " + network2Uuid);
         }
         String jsonDiff = new NetworkDiffUtil().diffSubstation(network1, network2, substationId, epsilon, voltageEpsilon);
-        LOGGER.info("network1 uuid: {}, network2 uuid: {}, substation: {}, threshold: {}, voltageThreshold: {}, diff: {}", network1Uuid, network2Uuid, substationId, epsilon, voltageEpsilon, jsonDiff);
+        logDiff(network1Uuid, network2Uuid, "substation", substationId, epsilon, voltageEpsilon, jsonDiff, loaded - start, System.nanoTime() - loaded);
         return jsonDiff;
     }
 
@@ -180,4 +287,172 @@ class NetworkDiffService {
 
         return new NetworkDiffUtil().getSubstationMergedSvgDiff(network1, network2, substationId, epsilon, voltageEpsilon, levelsData, showCurrent);
     }
+
+    //zones
+    public ZoneSvgDiff getZoneSvgDiff(UUID network1Uuid, UUID network2Uuid, List<String> substationIds, double epsilon, double voltageEpsilon, String levels) {
+        Objects.requireNonNull(network1Uuid);
+        Objects.requireNonNull(network2Uuid);
+        Objects.requireNonNull(substationIds);
+        Objects.requireNonNull(levels);
+        if (substationIds.size() > zoneMaxSubstations) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Too many substations in zone: " + substationIds.size() + ", maximum is " + zoneMaxSubstations);
+        }
+        Network network1 = getNetwork(network1Uuid, PreloadingStrategy.COLLECTION);
+        Network network2 = getNetwork(network2Uuid, PreloadingStrategy.COLLECTION);
+        for (String substationId : substationIds) {
+            Substation substation1 = network1.getSubstation(substationId);
+            if (substation1 == null) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Substation " + substationId + " not found in network1 " + network1Uuid);
+            }
+            Substation substation2 = network2.getSubstation(substationId);
+            if (substation2 == null) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Substation " + substationId + " not found in network2 " + network2Uuid);
+            }
+            loadBusViews(substation1);
+            loadBusViews(substation2);
+        }
+
+        LevelsData levelsData = LevelsData.parseData(levels);
+        LOGGER.info("levels data: {}", levelsData);
+
+        // both networks are loaded once and shared by all the rendering tasks
+        Map<String, Future<String>> futures = new LinkedHashMap<>();
+        Map<String, String> svgs = new LinkedHashMap<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(zoneTimeoutSeconds);
+        try {
+            for (String substationId : new LinkedHashSet<>(substationIds)) {
+                futures.put(substationId, zoneExecutor.submit(() -> new NetworkDiffUtil().getSubstationSvgDiff(network1, network2, substationId, epsilon, voltageEpsilon, levelsData)));
+            }
+            for (Map.Entry<String, Future<String>> entry : futures.entrySet()) {
+                svgs.put(entry.getKey(), entry.getValue().get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+            }
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many zone svg diffs in progress", e);
+        } catch (TimeoutException e) {
+            throw new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, "Zone svg diff not completed within " + zoneTimeoutSeconds + " s", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Zone svg diff interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Zone svg diff failed", e.getCause());
+        } finally {
+            futures.values().forEach(future -> future.cancel(true));
+        }
+        return extractSharedStyles(svgs);
+    }
+
+    /**
+     * Network instances are not thread safe, they fill caches lazily. The networks of a zone are fully fetched from
+     * the network store with the COLLECTION preloading strategy, and the bus views iidm computes on first access are
+     * built here, on the request thread, for the substation voltage levels and the voltage levels at the other side
+     * of their branches. Submitting the rendering tasks afterwards makes these writes visible to the workers.
+     * Only these two caches are guaranteed to be filled before the rendering: other lazily computed state of the
+     * network or of the rendering libraries, if any, is not covered.
+     */
+    private static void loadBusViews(Substation substation) {
+        Set<VoltageLevel> voltageLevels = new LinkedHashSet<>();
+        substation.getVoltageLevelStream().forEach(vl -> {
+            voltageLevels.add(vl);
+            vl.getConnectableStream().forEach(connectable -> {
+                for (Terminal terminal : ((Connectable<?>) connectable).getTerminals()) {
+                    voltageLevels.add(terminal.getVoltageLevel());
+                }
+            });
+        });
+        for (VoltageLevel vl : voltageLevels) {
+            vl.getBusView().getBuses().forEach(Identifiable::getId);
+            vl.getBusBreakerView().getBuses().forEach(Identifiable::getId);
+        }
+    }
+
+    /**
+     * Splits the style rules of the svgs of a zone: the rules found in every svg make the shared stylesheet, emitted
+     * only once. The other rules are kept in a single style block of each svg using them, so a rule missing from
+     * at least one diagram is still repeated in the others. Style blocks are not scoped: once several svgs are
+     * inlined in the same page, all their rules apply to the whole page.
+     */
+    static ZoneSvgDiff extractSharedStyles(Map<String, String> svgs) {
+        Map<String, List<String>> rulesBySvg = new LinkedHashMap<>();
+        svgs.forEach((id, svg) -> {
+            List<String> rules = new ArrayList<>();
+            Matcher matcher = SVG_STYLE_PATTERN.matcher(svg);
+            while (matcher.find()) {
+                rules.addAll(parseStyleRules(matcher.group(1)));
+            }
+            rulesBySvg.put(id, rules);
+        });
+
+        Set<String> sharedRules = new LinkedHashSet<>();
+        rulesBySvg.values().stream().findFirst().ifPresent(sharedRules::addAll);
+        rulesBySvg.values().forEach(sharedRules::retainAll);
+
+        Map<String, String> strippedSvgs = new LinkedHashMap<>();
+        svgs.forEach((id, svg) -> {
+            List<String> specificRules = new ArrayList<>(rulesBySvg.get(id));
+            specificRules.removeAll(sharedRules);
+            // the specific rules replace the first style block, the others are removed
+            String specificStyle = specificRules.isEmpty() ? "" : toStyleBlock(specificRules);
+            Matcher matcher = SVG_STYLE_PATTERN.matcher(svg);
+            StringBuilder strippedSvg = new StringBuilder();
+            boolean first = true;
+            while (matcher.find()) {
+                matcher.appendReplacement(strippedSvg, first ? Matcher.quoteReplacement(specificStyle) : "");
+                first = false;
+            }
+            matcher.appendTail(strippedSvg);
+            strippedSvgs.put(id, strippedSvg.toString());
+        });
+        return new ZoneSvgDiff(sharedRules.isEmpty() ? "" : toStyleBlock(sharedRules), strippedSvgs);
+    }
+
+    /**
+     * Splits a stylesheet into its top level rules: blocks like media queries are kept whole, and at-rules without
+     * block end at their semicolon. Comments are dropped and braces or semicolons inside strings are ignored.
+     */
+    private static List<String> parseStyleRules(String style) {
+        String css = style.replace("<![CDATA[", "").replace("]]>", "");
+        List<String> rules = new ArrayList<>();
+        StringBuilder rule = new StringBuilder();
+        int depth = 0;
+        int i = 0;
+        while (i < css.length()) {
+            char c = css.charAt(i);
+            if (c == '/' && css.startsWith("/*", i)) {
+                int end = css.indexOf("*/", i + 2);
+                i = end < 0 ? css.length() : end + 2;
+                continue;
+            }
+            if (c == '"' || c == '\'') {
+                int end = i + 1;
+                while (end < css.length() && css.charAt(end) != c) {
+                    end += css.charAt(end) == '\\' ? 2 : 1;
+                }
+                end = Math.min(end + 1, css.length());
+                rule.append(css, i, end);
+                i = end;
+                continue;
+            }
+            rule.append(c);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}' && depth > 0 && --depth == 0 || c == ';' && depth == 0) {
+                String trimmedRule = rule.toString().trim();
+                if (!trimmedRule.equals(";")) {
+                    rules.add(trimmedRule);
+                }
+                rule.setLength(0);
+            }
+            i++;
+        }
+        return rules;
+    }
+
+    private static String toStyleBlock(Collection<String> rules) {
+        return "<style type=\"text/css\"><![CDATA[" + System.lineSeparator()
+                + String.join(System.lineSeparator(), rules) + System.lineSeparator()
+                + "]]></style>";
+    }
 }
@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2021, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.powsybl.diff.server;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Svg diff diagrams of a set of substations, with the style rules common to all of them stored once.
+ *
+ * @author agent <agent@local>
+ */
+public class ZoneSvgDiff {
+
+    private final String styles;
+
+    private final Map<String, String> svgs;
+
+    public ZoneSvgDiff(String styles, Map<String, String> svgs) {
+        this.styles = Objects.requireNonNull(styles);
+        this.svgs = Objects.requireNonNull(svgs);
+    }
+
+    public String getStyles() {
+        return styles;
+    }
+
+    public Map<String, String> getSvgs() {
+        return svgs;
+    }
+}
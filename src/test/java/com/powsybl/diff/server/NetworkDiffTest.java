@@ -6,24 +6,43 @@
  */
 package com.powsybl.diff.server;
 
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
 import com.powsybl.commons.PowsyblException;
 import com.powsybl.iidm.network.*;
 import com.powsybl.network.store.client.NetworkStoreService;
+import com.powsybl.network.store.client.PreloadingStrategy;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.MockitoAnnotations;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
+import static com.powsybl.diff.server.NetworkDiffService.DEFAULTLEVELSDATA;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.BDDMockito.given;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -32,15 +51,24 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 @RunWith(SpringRunner.class)
 @WebMvcTest(NetworkDiffController.class)
 @ContextConfiguration(classes = {NetworkDiffApplication.class})
+@TestPropertySource(properties = "network-diff.zone-threads=4")
 public class NetworkDiffTest {
 
     public static final String DIFFTEMPLATE = "/v1/networks/{network1Uuid}/diff/{network1Uuid}/vl/{vlId}";
+    public static final String ZONESVGTEMPLATE = "/v1/networks/{network1Uuid}/svgdiff/{network1Uuid}/zone/{epsilon}/{voltageEpsilon}";
     @Autowired
     private MockMvc mvc;
 
     @MockBean
     private NetworkStoreService networkStoreService;
 
+    @Autowired
+    private NetworkDiffService networkDiffService;
+
+    private final Logger serviceLogger = (Logger) LoggerFactory.getLogger(NetworkDiffService.class);
+
+    private final ListAppender<ILoggingEvent> logAppender = new ListAppender<>();
+
     public static Network createNetwork1() {
         Network network = Network.create("test", "test");
 
@@ -70,6 +98,36 @@ public class NetworkDiffTest {
         return network;
     }
 
+    /**
+     * Network1 with three more substations, each one linked to s1 by a line.
+     */
+    public static Network createZoneNetwork1() {
+        Network network = createNetwork1();
+        VoltageLevel v1 = network.getVoltageLevel("v1");
+        for (int i = 2; i <= 4; i++) {
+            Substation s = createSubstation(network, "s" + i, "s" + i, Country.FR);
+            VoltageLevel vl = createVoltageLevel(s, "vl" + i, "vl" + i, TopologyKind.NODE_BREAKER, 380.0);
+            createBusBarSection(vl, "bbs" + i, "bbs" + i, 0);
+            createSwitch(vl, "vl" + i + "dload", "vl" + i + "dload", SwitchKind.DISCONNECTOR, true, false, false, 0, 1);
+            createSwitch(vl, "vl" + i + "bload", "vl" + i + "bload", SwitchKind.BREAKER, true, false, false, 1, 2);
+            createLoad(vl, "vl" + i + "load", "vl" + i + "load", 2, 0., 0.);
+            createSwitch(vl, "vl" + i + "dline", "vl" + i + "dline", SwitchKind.DISCONNECTOR, true, false, false, 0, 3);
+            createSwitch(vl, "vl" + i + "bline", "vl" + i + "bline", SwitchKind.BREAKER, true, false, false, 3, 4);
+            createSwitch(v1, "v1dline" + i, "v1dline" + i, SwitchKind.DISCONNECTOR, true, false, false, 0, 10 + i);
+            createSwitch(v1, "v1bline" + i, "v1bline" + i, SwitchKind.BREAKER, true, false, false, 10 + i, 20 + i);
+            createLine(network, "l" + i, "v1", 20 + i, "vl" + i, 4);
+        }
+        return network;
+    }
+
+    public static Network createZoneNetwork2() {
+        Network network = createZoneNetwork1();
+        network.getSwitch("v2bload").setOpen(true);
+        network.getSwitch("vl3bload").setOpen(true);
+        network.getSwitch("vl4bline").setOpen(true);
+        return network;
+    }
+
     private static Substation createSubstation(Network n, String id, String name, Country country) {
         return n.newSubstation()
                 .setId(id)
@@ -120,9 +178,48 @@ public class NetworkDiffTest {
                 .add();
     }
 
+    private static void createLine(Network n, String id, String vl1, int node1, String vl2, int node2) {
+        n.newLine()
+                .setId(id)
+                .setVoltageLevel1(vl1)
+                .setNode1(node1)
+                .setVoltageLevel2(vl2)
+                .setNode2(node2)
+                .setR(1.0)
+                .setX(1.0)
+                .setG1(0.0)
+                .setB1(0.0)
+                .setG2(0.0)
+                .setB2(0.0)
+                .add();
+    }
+
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
+        logAppender.start();
+        serviceLogger.addAppender(logAppender);
+    }
+
+    @After
+    public void tearDown() {
+        serviceLogger.detachAppender(logAppender);
+        serviceLogger.setLevel(null);
+        networkDiffService.setPayloadLogSamplingRate(0.0);
+    }
+
+    private List<String> loggedMessages(Level level) {
+        return logAppender.list.stream()
+                .filter(event -> event.getLevel() == level)
+                .map(ILoggingEvent::getFormattedMessage)
+                .collect(Collectors.toList());
+    }
+
+    private void givenDiffNetworks(UUID network1Uuid, UUID network2Uuid) {
+        given(networkStoreService.getNetwork(network1Uuid)).willReturn(createNetwork1());
+        given(networkStoreService.getNetwork(network2Uuid)).willReturn(createNetwork2());
+        given(networkStoreService.getNetwork(network1Uuid, PreloadingStrategy.COLLECTION)).willReturn(createNetwork1());
+        given(networkStoreService.getNetwork(network2Uuid, PreloadingStrategy.COLLECTION)).willReturn(createNetwork2());
     }
 
     @Test
@@ -131,8 +228,7 @@ public class NetworkDiffTest {
         UUID testNetwork2Id = UUID.fromString("7928181c-7977-4592-ba19-88027e4254e5");
         UUID notFoundNetworkId = UUID.fromString("aaaaaaaa-aaaa-aaaa-aaaa-aaaaaaaaaaaa");
 
-        given(networkStoreService.getNetwork(testNetwork1Id)).willReturn(createNetwork1());
-        given(networkStoreService.getNetwork(testNetwork2Id)).willReturn(createNetwork2());
+        givenDiffNetworks(testNetwork1Id, testNetwork2Id);
         given(networkStoreService.getNetwork(notFoundNetworkId)).willThrow(new PowsyblException());
 
         // network not existing
@@ -151,4 +247,177 @@ public class NetworkDiffTest {
         mvc.perform(get(DIFFTEMPLATE, testNetwork1Id, testNetwork1Id, "v2"))
                 .andExpect(status().isOk());
     }
+
+    @Test
+    public void testZoneSvg() throws Exception {
+        UUID testNetwork1Id = UUID.fromString("7928181c-7977-4592-ba19-88027e4254e4");
+        UUID testNetwork2Id = UUID.fromString("7928181c-7977-4592-ba19-88027e4254e5");
+
+        givenDiffNetworks(testNetwork1Id, testNetwork2Id);
+
+        // substation not existing
+        mvc.perform(get(ZONESVGTEMPLATE, testNetwork1Id, testNetwork2Id, 0.0, 0.0).param("ids", "s1", "notFound"))
+                .andExpect(status().isNotFound());
+
+        // too many substations
+        String[] tooManyIds = new String[101];
+        Arrays.fill(tooManyIds, "s1");
+        mvc.perform(get(ZONESVGTEMPLATE, testNetwork1Id, testNetwork2Id, 0.0, 0.0).param("ids", tooManyIds))
+                .andExpect(status().isBadRequest());
+
+        mvc.perform(get(ZONESVGTEMPLATE, testNetwork1Id, testNetwork2Id, 0.0, 0.0).param("ids", "s1"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"svgs\":{\"s1\":")));
+    }
+
+    @Test
+    public void testZoneSvgConcurrentRendering() {
+        UUID testNetwork1Id = UUID.fromString("7928181c-7977-4592-ba19-88027e4254e4");
+        UUID testNetwork2Id = UUID.fromString("7928181c-7977-4592-ba19-88027e4254e5");
+        List<String> substationIds = List.of("s1", "s2", "s3", "s4");
+
+        // a fresh network per request, so that the rendering tasks start from empty caches
+        given(networkStoreService.getNetwork(testNetwork1Id)).willAnswer(invocation -> createZoneNetwork1());
+        given(networkStoreService.getNetwork(testNetwork2Id)).willAnswer(invocation -> createZoneNetwork2());
+        given(networkStoreService.getNetwork(testNetwork1Id, PreloadingStrategy.COLLECTION)).willAnswer(invocation -> createZoneNetwork1());
+        given(networkStoreService.getNetwork(testNetwork2Id, PreloadingStrategy.COLLECTION)).willAnswer(invocation -> createZoneNetwork2());
+
+        Map<String, String> sequentialSvgs = new LinkedHashMap<>();
+        for (String substationId : substationIds) {
+            sequentialSvgs.put(substationId, networkDiffService.getSubstationSvgDiff(testNetwork1Id, testNetwork2Id, substationId, 0.0, 0.0, DEFAULTLEVELSDATA));
+        }
+        ZoneSvgDiff expected = NetworkDiffService.extractSharedStyles(sequentialSvgs);
+
+        // the four substations are rendered at the same time by the four zone threads
+        for (int i = 0; i < 10; i++) {
+            ZoneSvgDiff zoneSvgDiff = networkDiffService.getZoneSvgDiff(testNetwork1Id, testNetwork2Id, substationIds, 0.0, 0.0, DEFAULTLEVELSDATA);
+            assertEquals(expected.getStyles(), zoneSvgDiff.getStyles());
+            assertEquals(expected.getSvgs(), zoneSvgDiff.getSvgs());
+        }
+    }
+
+    @Test
+    public void testExtractSharedStyles() {
+        String sharedRule = ".sld-breaker {stroke: black}";
+        Map<String, String> svgs = new LinkedHashMap<>();
+        svgs.put("s1", "<svg><style type=\"text/css\"><![CDATA[" + sharedRule + " #s1_v1 {fill: red}]]></style><g/></svg>");
+        svgs.put("s2", "<svg><style type=\"text/css\"><![CDATA[" + sharedRule + "]]></style><style>#s2_v2 {fill: blue}</style><g/></svg>");
+        svgs.put("s3", "<svg><style type=\"text/css\"><![CDATA[" + sharedRule + "]]></style><g/></svg>");
+
+        ZoneSvgDiff zoneSvgDiff = NetworkDiffService.extractSharedStyles(svgs);
+
+        // the shared rule is emitted once, without the rules specific to a diagram
+        String styles = zoneSvgDiff.getStyles();
+        assertEquals(styles.indexOf(sharedRule), styles.lastIndexOf(sharedRule));
+        assertTrue(styles.contains(sharedRule));
+        assertFalse(styles.contains("#s1_v1"));
+        assertFalse(styles.contains("#s2_v2"));
+
+        // the other rules are kept in a single style block of the svg using them
+        String svg1 = zoneSvgDiff.getSvgs().get("s1");
+        assertTrue(svg1.contains("#s1_v1 {fill: red}"));
+        assertFalse(svg1.contains(sharedRule));
+        String svg2 = zoneSvgDiff.getSvgs().get("s2");
+        assertTrue(svg2.contains("#s2_v2 {fill: blue}"));
+        assertFalse(svg2.contains(sharedRule));
+        assertEquals(1, svg2.split("<style", -1).length - 1);
+        assertEquals("<svg><g/></svg>", zoneSvgDiff.getSvgs().get("s3"));
+    }
+
+    @Test
+    public void testExtractSharedStylesRules() {
+        String commonStyle = "@charset \"UTF-8\"; /* not a rule } */ .sld-label {content: \"}\"}";
+        String mediaRule = "@media print {.sld-breaker {stroke: black}}";
+        Map<String, String> svgs = new LinkedHashMap<>();
+        svgs.put("s1", "<svg><style><![CDATA[" + commonStyle + " " + mediaRule + "]]></style><g/></svg>");
+        svgs.put("s2", "<svg><style><![CDATA[" + commonStyle + "]]></style><g/></svg>");
+
+        ZoneSvgDiff zoneSvgDiff = NetworkDiffService.extractSharedStyles(svgs);
+
+        // comments are dropped, braces in strings and blocks of at-rules do not split rules
+        String styles = zoneSvgDiff.getStyles();
+        assertTrue(styles.contains("@charset \"UTF-8\";"));
+        assertTrue(styles.contains(".sld-label {content: \"}\"}"));
+        assertFalse(styles.contains("not a rule"));
+        assertFalse(styles.contains("@media"));
+        assertTrue(zoneSvgDiff.getSvgs().get("s1").contains(mediaRule));
+        assertEquals("<svg><g/></svg>", zoneSvgDiff.getSvgs().get("s2"));
+    }
+
+    @Test
+    public void testCountDifferences() {
+        // ids of the differing elements are counted once, their details are not
+        assertEquals(3, NetworkDiffService.countDifferences("{\"network1\": \"n1\", \"diff.VoltageLevels\": [\"v1\", \"v2\"], \"diff.Branches\": [\"l1\"], "
+                + "\"diff.VoltageLevelsInfos\": [{\"vl.vlId1\": \"v1\"}, {\"vl.vlId1\": \"v2\"}], \"diff.BranchesInfos\": [{\"branch.branchId1\": \"l1\"}]}"));
+        assertEquals(0, NetworkDiffService.countDifferences("{\"diff.VoltageLevels\": []}"));
+        assertEquals(-1, NetworkDiffService.countDifferences("not json"));
+    }
+
+    @Test
+    public void testCountDifferencesOfDiffResults() {
+        UUID testNetwork1Id = UUID.fromString("7928181c-7977-4592-ba19-88027e4254e4");
+        UUID testNetwork2Id = UUID.fromString("7928181c-7977-4592-ba19-88027e4254e5");
+        givenDiffNetworks(testNetwork1Id, testNetwork2Id);
+
+        // only the v2 load breaker differs between the two networks
+        assertTrue(NetworkDiffService.countDifferences(networkDiffService.diffVoltageLevel(testNetwork1Id, testNetwork2Id, "v2")) > 0);
+        assertTrue(NetworkDiffService.countDifferences(networkDiffService.diffSubstation(testNetwork1Id, testNetwork2Id, "s1")) > 0);
+        assertEquals(0, NetworkDiffService.countDifferences(networkDiffService.diffVoltageLevel(testNetwork1Id, testNetwork1Id, "v2")));
+        assertEquals(0, NetworkDiffService.countDifferences(networkDiffService.diffVoltageLevel(testNetwork1Id, testNetwork2Id, "v1")));
+    }
+
+    @Test
+    public void testDiffSummaryLog() {
+        UUID testNetwork1Id = UUID.fromString("7928181c-7977-4592-ba19-88027e4254e4");
+        UUID testNetwork2Id = UUID.fromString("7928181c-7977-4592-ba19-88027e4254e5");
+        givenDiffNetworks(testNetwork1Id, testNetwork2Id);
+
+        String jsonDiff = networkDiffService.diffVoltageLevel(testNetwork1Id, testNetwork2Id, "v2");
+
+        // one summary record, without the payload
+        List<String> infoMessages = loggedMessages(Level.INFO);
+        assertEquals(1, infoMessages.size());
+        assertTrue(infoMessages.get(0).contains("vl: v2"));
+        assertTrue(infoMessages.get(0).contains("differences: " + NetworkDiffService.countDifferences(jsonDiff)));
+        assertFalse(infoMessages.get(0).contains(jsonDiff));
+        assertTrue(loggedMessages(Level.DEBUG).isEmpty());
+    }
+
+    @Test
+    public void testDiffPayloadDebugLog() {
+        UUID testNetwork1Id = UUID.fromString("7928181c-7977-4592-ba19-88027e4254e4");
+        UUID testNetwork2Id = UUID.fromString("7928181c-7977-4592-ba19-88027e4254e5");
+        givenDiffNetworks(testNetwork1Id, testNetwork2Id);
+        serviceLogger.setLevel(Level.DEBUG);
+
+        String jsonDiff = networkDiffService.diffSubstation(testNetwork1Id, testNetwork2Id, "s1");
+
+        List<String> debugMessages = loggedMessages(Level.DEBUG);
+        assertEquals(1, debugMessages.size());
+        assertTrue(debugMessages.get(0).contains(jsonDiff));
+        assertTrue(loggedMessages(Level.INFO).stream().noneMatch(message -> message.contains(jsonDiff)));
+    }
+
+    @Test
+    public void testDiffPayloadSampling() {
+        UUID testNetwork1Id = UUID.fromString("7928181c-7977-4592-ba19-88027e4254e4");
+        UUID testNetwork2Id = UUID.fromString("7928181c-7977-4592-ba19-88027e4254e5");
+        givenDiffNetworks(testNetwork1Id, testNetwork2Id);
+
+        // every payload is logged at INFO level
+        networkDiffService.setPayloadLogSamplingRate(1.0);
+        String jsonDiff = networkDiffService.diffVoltageLevel(testNetwork1Id, testNetwork2Id, "v2");
+        assertEquals(1, loggedMessages(Level.INFO).stream().filter(message -> message.contains(jsonDiff)).count());
+
+        // only a part of the payloads is logged
+        logAppender.list.clear();
+        networkDiffService.setPayloadLogSamplingRate(0.5);
+        int requests = 200;
+        for (int i = 0; i < requests; i++) {
+            networkDiffService.diffVoltageLevel(testNetwork1Id, testNetwork2Id, "v2");
+        }
+        long sampled = loggedMessages(Level.INFO).stream().filter(message -> message.contains(jsonDiff)).count();
+        assertTrue(sampled > 0 && sampled < requests);
+        assertEquals(requests, loggedMessages(Level.INFO).stream().filter(message -> message.contains("differences: ")).count());
+    }
 }